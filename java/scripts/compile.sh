@@ -7,9 +7,12 @@ export PATH=$JAVA_HOME/bin:$PATH
 clear
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Cafe.java
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Cafe "project" 5432 cs172
 
+
+#apply a file of menu/user changes without the interactive menus
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Cafe "project" 5432 cs172 -batch changes.csv <manager login> <password>
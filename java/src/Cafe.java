@@ -13,18 +13,21 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
 import java.io.IOException;
 import java.sql.Timestamp;  
+import java.sql.Types;
 
 
 /**
@@ -42,6 +45,12 @@ public class Cafe {
    public String getAuthorisedUser(){return authorisedUser;}
    public void setAuthorisedUser(String a){authorisedUser = a;}
 
+   // when set, every statement is appended to this file for PlanCheck
+   private static final String SQL_CAPTURE = System.getProperty("cafe.sql.capture");
+
+   // the menu workflow being run, main sets it before calling the workflow
+   private static String workflow = "Cafe";
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -66,6 +75,8 @@ public class Cafe {
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         CafeMetrics.get().connectionOpened();
+         CafeMetrics.get().start(url, user, passwd);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -74,14 +85,64 @@ public class Cafe {
       }//end catch
    }//end Cafe
 
-   private void updateOrderPrice(Cafe esql, String orderid){
-      try{  
-         List<List<String>> result = esql.executeQueryAndReturnResult(String.format("SELECT SUM(price) FROM ItemStatus I, Menu M WHERE I.orderid = %s AND I.itemName = M.itemName", orderid));
-         if(result.isEmpty()){ return; }
-         String new_price = result.get(0).get(0);
-         esql.executeUpdate(String.format("UPDATE Orders SET total = %s", new_price));
-      }catch(Exception e){ 
-         System.err.println(e.getMessage());
+   private void updateOrderPrice(Cafe esql, String orderid) throws SQLException{
+      esql.executeUpdate(String.format("UPDATE Orders SET total = (SELECT COALESCE(SUM(COALESCE(I.price, M.price)), 0) FROM ItemStatus I, Menu M WHERE I.orderid = %s AND I.itemName = M.itemName) WHERE orderid = %s", orderid, orderid));
+   }
+
+   /*
+    * Appends a statement to the capture file as "<workflow>\t<sql>", where
+    * the workflow is the menu method (LogIn, PlaceOrder, ...) main is running.
+    **/
+   private static synchronized void captureSql (String sql) {
+      try{
+         FileWriter out = new FileWriter(SQL_CAPTURE, true);
+         out.write(workflow + "\t" + sql.replaceAll("\\s+", " ").trim() + "\n");
+         out.close();
+      }catch(IOException e){
+         System.err.println("Unable to capture SQL: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Runs a statement and records its execution time in CafeMetrics
+    **/
+   private ResultSet timedQuery (Statement stmt, String query) throws SQLException {
+      if (SQL_CAPTURE != null) captureSql(query);
+      long started = CafeMetrics.get().statementStarted();
+      try{
+         return stmt.executeQuery (query);
+      }finally{
+         CafeMetrics.get().statementFinished(started);
+      }
+   }
+
+   private int timedUpdate (Statement stmt, String sql) throws SQLException {
+      if (SQL_CAPTURE != null) captureSql(sql);
+      long started = CafeMetrics.get().statementStarted();
+      try{
+         return stmt.executeUpdate (sql);
+      }finally{
+         CafeMetrics.get().statementFinished(started);
+      }
+   }
+
+   // the prepared statements of batch mode, already bound
+   private int timedUpdate (PreparedStatement stmt) throws SQLException {
+      if (SQL_CAPTURE != null) captureSql(stmt.toString());
+      long started = CafeMetrics.get().statementStarted();
+      try{
+         return stmt.executeUpdate ();
+      }finally{
+         CafeMetrics.get().statementFinished(started);
+      }
+   }
+
+   private int[] timedBatch (PreparedStatement stmt, int size) throws SQLException {
+      long started = CafeMetrics.get().statementStarted();
+      try{
+         return stmt.executeBatch ();
+      }finally{
+         CafeMetrics.get().statementFinished(started, size);
       }
    }
 
@@ -90,17 +151,19 @@ public class Cafe {
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
+   public int executeUpdate (String sql) throws SQLException {
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
+      int rowCount = timedUpdate (stmt, sql);
 
       // close the instruction
       stmt.close ();
+      return rowCount;
    }//end executeUpdate
 
    /**
@@ -117,7 +180,7 @@ public class Cafe {
       Statement stmt = this._connection.createStatement ();
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      ResultSet rs = timedQuery (stmt, query);
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -160,7 +223,7 @@ public class Cafe {
       Statement stmt = this._connection.createStatement ();
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      ResultSet rs = timedQuery (stmt, query);
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -180,6 +243,7 @@ public class Cafe {
         result.add(record);
       }//end while
       stmt.close ();
+      CafeMetrics.get().rowsFetched(result.size());
       return result;
    }//end executeQueryAndReturnResult
 
@@ -196,7 +260,7 @@ public class Cafe {
        Statement stmt = this._connection.createStatement ();
 
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       ResultSet rs = timedQuery (stmt, query);
 
        int rowCount = 0;
 
@@ -220,7 +284,7 @@ public class Cafe {
    public int getCurrSeqVal(String sequence) throws SQLException {
 	Statement stmt = this._connection.createStatement ();
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+	ResultSet rs = timedQuery (stmt, String.format("Select currval('%s')", sequence));
 	if (rs.next())
 		return rs.getInt(1);
 	return -1;
@@ -231,8 +295,10 @@ public class Cafe {
     */
    public void cleanup(){
       try{
+         CafeMetrics.get().stop();
          if (this._connection != null){
             this._connection.close ();
+            CafeMetrics.get().connectionClosed();
          }//end if
       }catch (SQLException e){
          // ignored.
@@ -245,12 +311,13 @@ public class Cafe {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean batch = (args.length == 5 || args.length == 7) && args[3].equals("-batch");
+      if (args.length != 3 && !batch) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Cafe.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [-batch <file> [<login> <password>]]");
          return;
       }//end if
 
@@ -266,6 +333,17 @@ public class Cafe {
          String user = args[2];
          esql = new Cafe (dbname, dbport, user, "");
 
+         // a batch file is applied without the menus and then we exit
+         if (batch) {
+            workflow = "RunBatch";
+            if (!BatchLogIn(esql, args)) {
+               System.err.println("Batch mode is only available to managers");
+               return;
+            }//end if
+            RunBatch(esql, args[4]);
+            return;
+         }//end if
+
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -276,9 +354,11 @@ public class Cafe {
             System.out.println("9. < EXIT");
             String tempuser = null;
             switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: tempuser = LogIn(esql); 
+               case 1: workflow = "CreateUser"; CreateUser(esql); break;
+               case 2: workflow = "LogIn";
+                       tempuser = LogIn(esql); 
                        esql.setAuthorisedUser(tempuser);
+                       if (tempuser != null) CafeMetrics.get().sessionOpened();
                        break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
@@ -293,15 +373,20 @@ public class Cafe {
                 System.out.println("3. Place a Order");
                 System.out.println("4. Update a Order");
                 System.out.println("5. Order History");
+                System.out.println("6. Reports");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
                 switch (readChoice()){
-                   case 1: Menu(esql); break;
-                   case 2: UpdateProfile(esql); break;
-                   case 3: PlaceOrder(esql); break;
-                   case 4: UpdateOrder(esql); break;
-                   case 5: OrderHistory(esql); break;
-                   case 9: usermenu = false; break;
+                   case 1: workflow = "Menu"; Menu(esql); break;
+                   case 2: workflow = "UpdateProfile"; UpdateProfile(esql); break;
+                   case 3: workflow = "PlaceOrder"; PlaceOrder(esql); break;
+                   case 4: workflow = "UpdateOrder"; UpdateOrder(esql); break;
+                   case 5: workflow = "OrderHistory"; OrderHistory(esql); break;
+                   case 6: workflow = "Reports"; Reports(esql); break;
+                   case 9: usermenu = false;
+                           esql.setAuthorisedUser(null);
+                           CafeMetrics.get().sessionClosed();
+                           break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
@@ -388,11 +473,15 @@ public class Cafe {
 
          String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
          int num = esql.executeQuery(query);
-      if (num > 0)
+      if (num > 0){
+         CafeMetrics.get().loginSucceeded();
          return login;
+      }
+         CafeMetrics.get().loginFailed();
          return null;
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         CafeMetrics.get().loginFailed();
          return null;
       }
    }//end
@@ -634,28 +723,38 @@ public class Cafe {
             break;
 
             case 3:
+               long checkoutStarted = System.nanoTime();
                String order_id = esql.executeQueryAndReturnResult("SELECT nextval('orders_orderid_seq')").get(0).get(0);
                String user_login = esql.getAuthorisedUser();
                Timestamp timestamp = new Timestamp(System.currentTimeMillis());
                
-               String query2 = "INSERT into ORDERS (orderid,login,paid,timeStampRecieved,total) VALUES ('" + order_id + "', '" + user_login + "', '" + 0 + "', '" + timestamp + "', " + total + ")";
-
-   
-               esql.executeUpdate(query2);
+               // the order, its items and the report summaries are written together
+               esql._connection.setAutoCommit(false);
+               try{
+                  String query2 = "INSERT into ORDERS (orderid,login,paid,timeStampRecieved,total) VALUES ('" + order_id + "', '" + user_login + "', '" + 0 + "', '" + timestamp + "', " + total + ")";
+                  esql.executeUpdate(query2);
 
-               
+                  System.out.println("\n\nChecking out...\n");
+                  System.out.println("------------------------------------------");
+                  System.out.println("Items in cart: ");
 
-               System.out.println("\n\nChecking out...\n");
-               System.out.println("------------------------------------------");
-               System.out.println("Items in cart: ");
-               
-               for(int i = 0; i < orders.size(); i++){
-                  final String query3 = "INSERT into ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES ('" + order_id + "', '" + orders.get(i) + "', '" + timestamp +"', 'Not Shipped', 'NONE')";
+                  for(int i = 0; i < orders.size(); i++){
+                     final String query3 = "INSERT into ItemStatus (orderid, itemName, lastUpdated, status, comments, price) VALUES ('" + order_id + "', '" + orders.get(i) + "', '" + timestamp +"', 'Not Shipped', 'NONE', (SELECT price FROM Menu WHERE itemName = '" + orders.get(i) + "'))";
 
-                  esql.executeUpdate(query3);
-                  System.out.println('\t' + "* " + orders.get(i));
+                     esql.executeUpdate(query3);
+                     System.out.println('\t' + "* " + orders.get(i));
+                  }
+                  RecordSale(esql, order_id);
+                  esql._connection.commit();
+               }catch(SQLException e){
+                  esql._connection.rollback();
+                  throw e;
+               }finally{
+                  esql._connection.setAutoCommit(true);
                }
                System.out.println("\nTotal: " + total + "\n");
+               CafeMetrics.get().orderPlaced();
+               CafeMetrics.get().checkoutFinished(checkoutStarted);
                System.out.println("Order submitted, order id = " + order_id + ".");
                System.out.println("------------------------------------------\n");
                total = 0.0;
@@ -715,9 +814,32 @@ public class Cafe {
 
 
       while(true){
-         List<List<String>> Iresult = esql.executeQueryAndReturnResult(String.format("SELECT I.orderid, M.itemName, M.description, M.price FROM ItemStatus I, Menu M WHERE I.orderid = %s AND I.itemName = M.itemName", oid));
+         // the version is read before the items so any change made after
+         // this point is caught when the edit is written back
+         List<List<String>> Ostate = esql.executeQueryAndReturnResult(String.format("SELECT total, version FROM Orders WHERE orderid = %s", oid));
+         if(Ostate.isEmpty()){
+            System.out.println("No Order with id: " + oid);
+            break;
+         }
+         String total = Ostate.get(0).get(0);
+         int version = Integer.parseInt(Ostate.get(0).get(1));
+
+         List<List<String>> Iresult = esql.executeQueryAndReturnResult(String.format("SELECT I.orderid, M.itemName, M.description, COALESCE(I.price, M.price) AS price FROM ItemStatus I, Menu M WHERE I.orderid = %s AND I.itemName = M.itemName", oid));
          if(Iresult.isEmpty()){
-            esql.executeUpdate(String.format("DELETE FROM Orders WHERE orderid = %s", oid));
+            esql._connection.setAutoCommit(false);
+            try{
+               RecordOrderRemoved(esql, oid);
+               if(esql.executeUpdate(String.format("DELETE FROM Orders WHERE orderid = %s AND version = %d", oid, version)) == 1){
+                  esql._connection.commit();
+               } else {
+                  esql._connection.rollback();
+               }
+            }catch(SQLException e){
+               esql._connection.rollback();
+               throw e;
+            }finally{
+               esql._connection.setAutoCommit(true);
+            }
             System.out.println("No Order with id: " + oid);
             break;
          }
@@ -730,7 +852,7 @@ public class Cafe {
             }
             System.out.println();
          }
-         System.out.println("Total ................. " + esql.executeQueryAndReturnResult("SELECT total FROM Orders WHERE orderid = " + oid).get(0).get(0));
+         System.out.println("Total ................. " + total);
 
          if(isCustomer){
             System.out.print("[Empty to return]\nEnter the item to delete: ");
@@ -746,9 +868,9 @@ public class Cafe {
             String orderid = Iresult.get(selection - 1).get(0);
             String itemname = Iresult.get(selection - 1).get(1);
 
-            esql.executeUpdate(String.format("DELETE FROM ItemStatus WHERE orderid = %s AND itemName = '%s'", orderid, itemname));
-            System.out.println("Deleted item: " + itemname);
-            esql.updateOrderPrice(esql, orderid);
+            if(RemoveOrderItem(esql, orderid, itemname, version)){
+               System.out.println("Deleted item: " + itemname);
+            }
          } else {
             if(selection == 1){
                System.out.print("[Empty to return]\nEnter the item to delete: ");
@@ -759,18 +881,176 @@ public class Cafe {
                String orderid = Iresult.get(selection - 1).get(0);
                String itemname = Iresult.get(selection - 1).get(1);
 
-               esql.executeUpdate(String.format("DELETE FROM ItemStatus WHERE orderid = %s AND itemName = '%s'", orderid, itemname));
-               System.out.println("Deleted item: " + itemname);
-               esql.updateOrderPrice(esql, orderid);
+               if(RemoveOrderItem(esql, orderid, itemname, version)){
+                  System.out.println("Deleted item: " + itemname);
+               }
 
             } else if (selection == 2){
-               esql.executeUpdate(String.format("UPDATE Orders SET paid = true WHERE orderid = %s", oid));
-               System.out.println("Order " + oid + " has been paid.");
+               if(PayOrder(esql, oid, total, version)){
+                  System.out.println("Order " + oid + " has been paid.");
+               }
             }
          }
       }
   }
 
+  // how many times an order edit is merged onto a newer version before giving up
+  private static final int MAX_ORDER_RETRIES = 3;
+
+  /*
+   * Removes an item from an order and recomputes its total, but only if the
+   * order is still at the version the user was looking at. If someone else
+   * changed the order in the meantime the removal is merged onto the newer
+   * version as long as the order is unpaid and the item is still in it.
+   * @return true if the item was removed
+   **/
+  private static boolean RemoveOrderItem(Cafe esql, String orderid, String itemname, int version) throws SQLException{
+     for(int attempt = 0; attempt < MAX_ORDER_RETRIES; attempt++){
+        esql._connection.setAutoCommit(false);
+        try{
+           // bumping the version first locks the row for the rest of this short transaction
+           if(esql.executeUpdate(String.format("UPDATE Orders SET version = version + 1 WHERE orderid = %s AND version = %d AND paid = false", orderid, version)) == 1){
+              String oldTotal = esql.executeQueryAndReturnResult(String.format("SELECT total FROM Orders WHERE orderid = %s", orderid)).get(0).get(0);
+              RecordItemRemoved(esql, orderid, itemname);
+              if(esql.executeUpdate(String.format("DELETE FROM ItemStatus WHERE orderid = %s AND itemName = '%s'", orderid, itemname)) == 1){
+                 esql.updateOrderPrice(esql, orderid);
+                 RecordTotalChanged(esql, orderid, oldTotal);
+                 esql._connection.commit();
+                 return true;
+              }
+           }
+           esql._connection.rollback();
+        }catch(SQLException e){
+           esql._connection.rollback();
+           throw e;
+        }finally{
+           esql._connection.setAutoCommit(true);
+        }
+
+        List<List<String>> current = esql.executeQueryAndReturnResult(String.format("SELECT version, paid FROM Orders WHERE orderid = %s", orderid));
+        if(current.isEmpty() || current.get(0).get(1).startsWith("t")){
+           System.out.println("Order " + orderid + " has been paid or removed by someone else.");
+           return false;
+        }
+        if(esql.executeQuery(String.format("SELECT * FROM ItemStatus WHERE orderid = %s AND itemName = '%s'", orderid, itemname)) == 0){
+           System.out.println(itemname.trim() + " has already been removed by someone else.");
+           return false;
+        }
+        System.out.println("Order " + orderid + " was changed by someone else, removing " + itemname.trim() + " from the latest version.");
+        version = Integer.parseInt(current.get(0).get(0));
+     }
+     System.out.println("Order " + orderid + " is being changed by someone else, please try again.");
+     return false;
+  }
+
+  /*
+   * Marks an order as paid if it is still at the version the employee was
+   * looking at. A newer version is only paid when its total is the one that
+   * was shown, otherwise the employee has to look at the order again.
+   * @return true if the order was paid
+   **/
+  private static boolean PayOrder(Cafe esql, String orderid, String total, int version) throws SQLException{
+     for(int attempt = 0; attempt < MAX_ORDER_RETRIES; attempt++){
+        esql._connection.setAutoCommit(false);
+        try{
+           if(esql.executeUpdate(String.format("UPDATE Orders SET paid = true, version = version + 1 WHERE orderid = %s AND version = %d AND paid = false", orderid, version)) == 1){
+              RecordPayment(esql, orderid);
+              esql._connection.commit();
+              return true;
+           }
+           esql._connection.rollback();
+        }catch(SQLException e){
+           esql._connection.rollback();
+           throw e;
+        }finally{
+           esql._connection.setAutoCommit(true);
+        }
+
+        List<List<String>> current = esql.executeQueryAndReturnResult(String.format("SELECT version, paid, total FROM Orders WHERE orderid = %s", orderid));
+        if(current.isEmpty() || current.get(0).get(1).startsWith("t")){
+           System.out.println("Order " + orderid + " has been paid or removed by someone else.");
+           return false;
+        }
+        if(!current.get(0).get(2).equals(total)){
+           System.out.println("Order " + orderid + " was changed by someone else, the total is now " + current.get(0).get(2) + ". Please check it again.");
+           return false;
+        }
+        version = Integer.parseInt(current.get(0).get(0));
+     }
+     System.out.println("Order " + orderid + " is being changed by someone else, please try again.");
+     return false;
+  }
+
+  /*
+   * The report summaries ItemSales, HourlySales and CustomerSales are kept
+   * up to date in the same transaction as the checkout, item removal or
+   * payment that changes them. sql/src/backfill_reports.sql rebuilds them
+   * from the order history.
+   **/
+  private static void RecordSale(Cafe esql, String orderid) throws SQLException{
+     esql.executeUpdate(String.format("INSERT INTO ItemSales (itemName, quantity, revenue) SELECT itemName, 1, price::numeric(12,2) FROM ItemStatus WHERE orderid = %s ON CONFLICT (itemName) DO UPDATE SET quantity = ItemSales.quantity + 1, revenue = ItemSales.revenue + EXCLUDED.revenue", orderid));
+     esql.executeUpdate(String.format("INSERT INTO HourlySales (hour, orders, revenue) SELECT date_trunc('hour', timeStampRecieved), 1, total::numeric(12,2) FROM Orders WHERE orderid = %s ON CONFLICT (hour) DO UPDATE SET orders = HourlySales.orders + 1, revenue = HourlySales.revenue + EXCLUDED.revenue", orderid));
+     esql.executeUpdate(String.format("INSERT INTO CustomerSales (login, orders, revenue, unpaid) SELECT login, 1, total::numeric(12,2), CASE WHEN paid THEN 0 ELSE total::numeric(12,2) END FROM Orders WHERE orderid = %s AND login IS NOT NULL ON CONFLICT (login) DO UPDATE SET orders = CustomerSales.orders + 1, revenue = CustomerSales.revenue + EXCLUDED.revenue, unpaid = CustomerSales.unpaid + EXCLUDED.unpaid", orderid));
+  }
+
+  // called before the item is deleted, it takes back the price the item was sold at
+  private static void RecordItemRemoved(Cafe esql, String orderid, String itemname) throws SQLException{
+     esql.executeUpdate(String.format("UPDATE ItemSales S SET quantity = S.quantity - 1, revenue = S.revenue - COALESCE(I.price, M.price)::numeric(12,2) FROM ItemStatus I, Menu M WHERE I.orderid = %s AND I.itemName = '%s' AND M.itemName = I.itemName AND S.itemName = I.itemName", orderid, itemname));
+  }
+
+  // called after the order total is recomputed
+  private static void RecordTotalChanged(Cafe esql, String orderid, String oldTotal) throws SQLException{
+     esql.executeUpdate(String.format("UPDATE HourlySales H SET revenue = H.revenue + O.total::numeric(12,2) - %s::real::numeric(12,2) FROM Orders O WHERE O.orderid = %s AND H.hour = date_trunc('hour', O.timeStampRecieved)", oldTotal, orderid));
+     esql.executeUpdate(String.format("UPDATE CustomerSales C SET revenue = C.revenue + O.total::numeric(12,2) - %s::real::numeric(12,2), unpaid = C.unpaid + O.total::numeric(12,2) - %s::real::numeric(12,2) FROM Orders O WHERE O.orderid = %s AND C.login = O.login", oldTotal, oldTotal, orderid));
+  }
+
+  private static void RecordPayment(Cafe esql, String orderid) throws SQLException{
+     esql.executeUpdate(String.format("UPDATE CustomerSales C SET unpaid = C.unpaid - O.total::numeric(12,2) FROM Orders O WHERE O.orderid = %s AND C.login = O.login", orderid));
+  }
+
+  // called before the order is deleted
+  private static void RecordOrderRemoved(Cafe esql, String orderid) throws SQLException{
+     esql.executeUpdate(String.format("UPDATE HourlySales H SET orders = H.orders - 1, revenue = H.revenue - O.total::numeric(12,2) FROM Orders O WHERE O.orderid = %s AND H.hour = date_trunc('hour', O.timeStampRecieved)", orderid));
+     esql.executeUpdate(String.format("UPDATE CustomerSales C SET orders = C.orders - 1, revenue = C.revenue - O.total::numeric(12,2), unpaid = C.unpaid - CASE WHEN O.paid THEN 0 ELSE O.total::numeric(12,2) END FROM Orders O WHERE O.orderid = %s AND C.login = O.login", orderid));
+  }
+
+  public static void Reports(Cafe esql) throws SQLException{
+     List<List<String>> result = esql.executeQueryAndReturnResult(String.format("SELECT type FROM USERS WHERE login = '%s'", esql.getAuthorisedUser()));
+     if(result.isEmpty() || !result.get(0).get(0).contains("Manager")){
+        System.out.println("ONLY MANAGER CAN VIEW REPORTS");
+        return;
+     }
+
+     while(true){
+        System.out.print("\n(1) Revenue per item\n(2) Revenue per type\n(3) Revenue per hour (latest 24 hours)\n(4) Revenue per day (latest 30 days)\n(5) Top customers\n(6) Unpaid balances\n(7) Main Menu\n");
+        switch(readChoice()){
+           case 1:
+              esql.executeQueryAndPrintResult("SELECT itemName, quantity, revenue FROM ItemSales ORDER BY revenue DESC");
+              break;
+           case 2:
+              esql.executeQueryAndPrintResult("SELECT M.type, SUM(S.quantity) AS quantity, SUM(S.revenue) AS revenue FROM ItemSales S, Menu M WHERE S.itemName = M.itemName GROUP BY M.type ORDER BY revenue DESC");
+              break;
+           case 3:
+              esql.executeQueryAndPrintResult("SELECT hour, orders, revenue FROM HourlySales WHERE hour > (SELECT MAX(hour) FROM HourlySales) - INTERVAL '24 hours' ORDER BY hour");
+              break;
+           case 4:
+              esql.executeQueryAndPrintResult("SELECT date_trunc('day', hour) AS day, SUM(orders) AS orders, SUM(revenue) AS revenue FROM HourlySales WHERE hour >= (SELECT date_trunc('day', MAX(hour)) FROM HourlySales) - INTERVAL '29 days' GROUP BY 1 ORDER BY 1");
+              break;
+           case 5:
+              esql.executeQueryAndPrintResult("SELECT login, orders, revenue FROM CustomerSales ORDER BY revenue DESC LIMIT 10");
+              break;
+           case 6:
+              esql.executeQueryAndPrintResult("SELECT login, unpaid FROM CustomerSales WHERE unpaid > 0 ORDER BY unpaid DESC LIMIT 20");
+              break;
+           case 7:
+              return;
+           default:
+              System.out.println("Unrecognized choice!");
+              break;
+        }
+     }
+  }
+
   public static void OrderHistory(Cafe esql) throws SQLException{
      String login = esql.getAuthorisedUser();
      String query = "SELECT * FROM ORDERS WHERE login = '" + login + "' ORDER BY orderid, timeStampRecieved LIMIT 5";
@@ -779,5 +1059,241 @@ public class Cafe {
      esql.executeQueryAndPrintResult(query);
   }
 
+  // number of rows sent to the server in one executeBatch call
+  private static final int BATCH_SIZE = 500;
+
+  // one parsed line of a batch file
+  private static class BatchRow {
+     int line;
+     String command;
+     String[] fields;
+  }
+
+  /*
+   * Checks that batch mode is run by a manager. The login and password come
+   * after the file name or are asked for like in LogIn.
+   * @return true if the credentials belong to a manager
+   **/
+  public static boolean BatchLogIn(Cafe esql, String[] args){
+     try{
+        String login, password;
+        if(args.length == 7){
+           login = args[5];
+           password = args[6];
+        } else {
+           System.out.print("\tEnter manager login: ");
+           login = in.readLine();
+           System.out.print("\tEnter manager password: ");
+           password = in.readLine();
+        }
+        List<List<String>> result = esql.executeQueryAndReturnResult(String.format("SELECT type FROM USERS WHERE login = '%s' AND password = '%s'", login, password));
+        if(result.isEmpty()){
+           CafeMetrics.get().loginFailed();
+           return false;
+        }
+        CafeMetrics.get().loginSucceeded();
+        return result.get(0).get(0).contains("Manager");
+     }catch(Exception e){
+        System.err.println(e.getMessage());
+        return false;
+     }
+  }
+
+  /*
+   * Applies a file of menu and user administration commands as one
+   * transaction. Each line is ';' separated like the files in data/:
+   *    ADD;itemName;type;price;description;imageURL
+   *    UPDATE;itemName;type;price[;description[;imageURL]]
+   *    DELETE;itemName
+   *    TYPE;login;newType
+   * Blank lines and lines starting with '#' are skipped. Rows that fail
+   * are reported with their line number and left out of the commit.
+   **/
+  public static void RunBatch(Cafe esql, String fileName){
+     long start = System.currentTimeMillis();
+     int read = 0, applied = 0, failed = 0;
+     BufferedReader file = null;
+     try{
+        file = new BufferedReader(new FileReader(new File(fileName)));
+        esql._connection.setAutoCommit(false);
+
+        // consecutive rows with the same command are sent as one batch so
+        // the file is still applied in order
+        List<BatchRow> chunk = new ArrayList<BatchRow>();
+        String line;
+        int lineNum = 0;
+        while((line = file.readLine()) != null){
+           lineNum++;
+           if(line.trim().isEmpty() || line.startsWith("#")){ continue; }
+           read++;
+
+           BatchRow row = new BatchRow();
+           row.line = lineNum;
+           row.fields = line.split(";", -1);
+           row.command = row.fields[0].trim().toUpperCase();
+           String error = validateBatchRow(row);
+           if(error != null){
+              System.err.println(String.format("Line %d: %s", lineNum, error));
+              failed++;
+              continue;
+           }
+
+           if(!chunk.isEmpty() && (!chunk.get(0).command.equals(row.command) || chunk.size() == BATCH_SIZE)){
+              applied += flushBatch(esql, chunk);
+              chunk.clear();
+           }
+           chunk.add(row);
+        }
+        applied += flushBatch(esql, chunk);
+        failed = read - applied;
+
+        esql._connection.commit();
+     }catch(Exception e){
+        System.err.println(e.getMessage());
+        System.err.println("Batch rolled back, no rows were applied");
+        try{ esql._connection.rollback(); }catch(SQLException ignored){}
+        applied = 0;
+        failed = read;
+     }finally{
+        try{
+           if(file != null){ file.close(); }
+           esql._connection.setAutoCommit(true);
+        }catch(Exception ignored){}
+     }
+
+     long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+     System.out.println("------------------------------------------");
+     System.out.println("Rows read:    " + read);
+     System.out.println("Rows applied: " + applied);
+     System.out.println("Rows failed:  " + failed);
+     System.out.println(String.format("Elapsed:      %d ms (%.1f rows/s)", elapsed, applied * 1000.0 / elapsed));
+     System.out.println("------------------------------------------");
+  }
+
+  /*
+   * Checks the shape of a batch row before it reaches the database
+   * @return a description of the problem or null if the row is fine
+   **/
+  private static String validateBatchRow(BatchRow row){
+     String[] f = row.fields;
+     switch(row.command){
+        case "ADD":
+        case "UPDATE":
+           if(f.length < 4 || f.length > 6){ return row.command + " expects itemName;type;price[;description[;imageURL]]"; }
+           if(f[1].isEmpty()){ return "Item name is empty"; }
+           try{
+              Float.parseFloat(f[3]);
+           }catch(NumberFormatException e){
+              return "Invalid price: " + f[3];
+           }
+           return null;
+        case "DELETE":
+           if(f.length != 2 || f[1].isEmpty()){ return "DELETE expects itemName"; }
+           return null;
+        case "TYPE":
+           if(f.length != 3 || f[1].isEmpty()){ return "TYPE expects login;newType"; }
+           if(f[2].isEmpty() || f[2].length() > 8){ return "Invalid user type: " + f[2]; }
+           return null;
+        default:
+           return "Unknown command: " + f[0];
+     }
+  }
+
+  private static PreparedStatement prepareBatch(Cafe esql, String command) throws SQLException{
+     switch(command){
+        case "ADD":    return esql._connection.prepareStatement("INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?)");
+        case "UPDATE": return esql._connection.prepareStatement("UPDATE Menu SET type = ?, price = ?, description = COALESCE(?, description), imageURL = COALESCE(?, imageURL) WHERE itemName = ?");
+        case "DELETE": return esql._connection.prepareStatement("DELETE FROM Menu WHERE itemName = ?");
+        default:       return esql._connection.prepareStatement("UPDATE Users SET type = ? WHERE login = ?");
+     }
+  }
+
+  private static void bindBatchRow(PreparedStatement stmt, BatchRow row) throws SQLException{
+     String[] f = row.fields;
+     switch(row.command){
+        case "ADD":
+           stmt.setString(1, f[1]);
+           stmt.setString(2, f[2]);
+           stmt.setFloat(3, Float.parseFloat(f[3]));
+           stmt.setString(4, f.length > 4 ? f[4] : "");
+           stmt.setString(5, f.length > 5 ? f[5] : "");
+           break;
+        case "UPDATE":
+           stmt.setString(1, f[2]);
+           stmt.setFloat(2, Float.parseFloat(f[3]));
+           // fields left off the row keep their current value
+           if(f.length > 4){ stmt.setString(3, f[4]); } else { stmt.setNull(3, Types.CHAR); }
+           if(f.length > 5){ stmt.setString(4, f[5]); } else { stmt.setNull(4, Types.CHAR); }
+           stmt.setString(5, f[1]);
+           break;
+        case "DELETE":
+           stmt.setString(1, f[1]);
+           break;
+        default:
+           stmt.setString(1, f[2]);
+           stmt.setString(2, f[1]);
+           break;
+     }
+  }
+
+  /*
+   * Sends a chunk of rows with the same command as a single JDBC batch.
+   * If the batch fails it is rolled back to a savepoint and replayed one
+   * row at a time so the bad rows can be reported and the rest kept.
+   * @return the number of rows applied
+   **/
+  private static int flushBatch(Cafe esql, List<BatchRow> chunk) throws SQLException{
+     if(chunk.isEmpty()){ return 0; }
+     String command = chunk.get(0).command;
+     PreparedStatement stmt = prepareBatch(esql, command);
+     int applied = 0;
+     try{
+        esql.executeUpdate("SAVEPOINT batch_chunk");
+        try{
+           for(BatchRow row : chunk){
+              bindBatchRow(stmt, row);
+              // the driver prints a bound statement with its values in place
+              if(SQL_CAPTURE != null){ captureSql(stmt.toString()); }
+              stmt.addBatch();
+           }
+           int[] counts = esql.timedBatch(stmt, chunk.size());
+           for(int i = 0; i < counts.length; i++){
+              if(counts[i] == 0){
+                 System.err.println(String.format("Line %d: No such %s: %s", chunk.get(i).line, command.equals("TYPE") ? "user" : "item", chunk.get(i).fields[1]));
+              } else {
+                 applied++;
+              }
+           }
+           esql.executeUpdate("RELEASE SAVEPOINT batch_chunk");
+           return applied;
+        }catch(SQLException e){
+           esql.executeUpdate("ROLLBACK TO SAVEPOINT batch_chunk");
+           stmt.clearBatch();
+        }
+
+        applied = 0;
+        for(BatchRow row : chunk){
+           esql.executeUpdate("SAVEPOINT batch_row");
+           try{
+              bindBatchRow(stmt, row);
+              if(esql.timedUpdate(stmt) == 0){
+                 System.err.println(String.format("Line %d: No such %s: %s", row.line, command.equals("TYPE") ? "user" : "item", row.fields[1]));
+              } else {
+                 applied++;
+              }
+              esql.executeUpdate("RELEASE SAVEPOINT batch_row");
+           }catch(SQLException e){
+              esql.executeUpdate("ROLLBACK TO SAVEPOINT batch_row");
+              System.err.println(String.format("Line %d: %s", row.line, e.getMessage()));
+           }
+        }
+        esql.executeUpdate("RELEASE SAVEPOINT batch_chunk");
+        return applied;
+     }finally{
+        stmt.close();
+     }
+  }
+
 }//end Cafe
 
+
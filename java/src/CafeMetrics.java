@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Live operational counters of a running Cafe. The counters are published
+ * as the JMX MBean "Cafe:type=Metrics" and in Prometheus text format on
+ * http://127.0.0.1:&lt;port&gt;/metrics when the cafe.metrics.port system
+ * property is set. The endpoint is off by default so several Cafe
+ * processes on one host do not compete for a port; give each its own.
+ *
+ * All counters on the hot paths are striped and updated without locks.
+ */
+public class CafeMetrics implements CafeMetricsMBean {
+
+   // seconds between samples of the order rate and of pg_stat_database
+   private static final int SAMPLE_SECONDS = 5;
+
+   // upper bounds of the checkout latency histogram, in milliseconds
+   private static final long[] CHECKOUT_BUCKETS_MS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+   private static final CafeMetrics INSTANCE = new CafeMetrics();
+
+   public static CafeMetrics get(){return INSTANCE;}
+
+   private final StripedCounter ordersPlaced = new StripedCounter();
+   private final StripedCounter checkouts = new StripedCounter();
+   private final StripedCounter checkoutNanos = new StripedCounter();
+   private final StripedCounter[] checkoutBuckets = new StripedCounter[CHECKOUT_BUCKETS_MS.length];
+   private final AtomicLong checkoutMaxNanos = new AtomicLong();
+   private final StripedCounter activeSessions = new StripedCounter();
+   private final StripedCounter loginSuccesses = new StripedCounter();
+   private final StripedCounter loginFailures = new StripedCounter();
+   private final StripedCounter openConnections = new StripedCounter();
+   private final StripedCounter statements = new StripedCounter();
+   private final StripedCounter statementsInFlight = new StripedCounter();
+   private final StripedCounter statementNanos = new StripedCounter();
+   private final StripedCounter rowsFetched = new StripedCounter();
+
+   // written only by the sampler thread
+   private volatile double ordersPerSecond = 0;
+   private volatile long databaseBackends = 0;
+   private volatile long blocksHit = 0;
+   private volatile long blocksRead = 0;
+   private long lastOrdersPlaced = 0;
+
+   private boolean started = false;
+   private HttpServer server = null;
+   private ScheduledExecutorService sampler = null;
+   private Connection statsConnection = null;
+
+   private CafeMetrics(){
+      for(int i = 0; i < checkoutBuckets.length; i++){
+         checkoutBuckets[i] = new StripedCounter();
+      }
+   }
+
+   /**
+    * Registers the MBean, starts the sampler and the HTTP endpoint. The
+    * connection details are used to open a separate connection for reading
+    * pg_stat_database so sampling never shares the application connection.
+    * Calling it again is a no-op.
+    */
+   public synchronized void start(String url, String user, String passwd){
+      if(started){ return; }
+      started = true;
+
+      try{
+         MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+         mbs.registerMBean(this, new ObjectName("Cafe:type=Metrics"));
+      }catch(Exception e){
+         System.err.println("Unable to register metrics MBean: " + e.getMessage());
+      }
+
+      final String statsUrl = url, statsUser = user, statsPasswd = passwd;
+      sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+         public Thread newThread(Runnable r){
+            Thread t = new Thread(r, "cafe-metrics");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      sampler.scheduleAtFixedRate(new Runnable(){
+         public void run(){ sample(statsUrl, statsUser, statsPasswd); }
+      }, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+
+      int port = Integer.getInteger("cafe.metrics.port", 0);
+      if(port <= 0){ return; }
+      try{
+         server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+         server.createContext("/metrics", new HttpHandler(){
+            public void handle(HttpExchange exchange) throws IOException{
+               byte[] body = prometheus().getBytes("UTF-8");
+               exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+               exchange.sendResponseHeaders(200, body.length);
+               OutputStream out = exchange.getResponseBody();
+               out.write(body);
+               out.close();
+            }
+         });
+         server.start();
+      }catch(IOException e){
+         System.err.println("Unable to start metrics endpoint on port " + port + ": " + e.getMessage());
+         server = null;
+      }
+   }//end start
+
+   /**
+    * Stops the HTTP endpoint and the sampler so the process can exit. The
+    * sampler is waited for before its connection is closed under it.
+    */
+   public synchronized void stop(){
+      if(server != null){
+         server.stop(0);
+         server = null;
+      }
+      if(sampler != null){
+         sampler.shutdownNow();
+         try{
+            sampler.awaitTermination(SAMPLE_SECONDS, TimeUnit.SECONDS);
+         }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+         }
+         sampler = null;
+      }
+      try{
+         if(statsConnection != null){
+            statsConnection.close();
+         }
+      }catch(SQLException e){
+         // ignored.
+      }
+      statsConnection = null;
+   }//end stop
+
+   // runs on the sampler thread only
+   private void sample(String url, String user, String passwd){
+      long orders = ordersPlaced.sum();
+      ordersPerSecond = (double)(orders - lastOrdersPlaced) / SAMPLE_SECONDS;
+      lastOrdersPlaced = orders;
+
+      try{
+         if(statsConnection == null){
+            statsConnection = DriverManager.getConnection(url, user, passwd);
+         }
+         Statement stmt = statsConnection.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT numbackends, blks_hit, blks_read FROM pg_stat_database WHERE datname = current_database()");
+         if(rs.next()){
+            databaseBackends = rs.getLong(1);
+            blocksHit = rs.getLong(2);
+            blocksRead = rs.getLong(3);
+         }
+         stmt.close();
+      }catch(SQLException e){
+         // try again with a fresh connection on the next sample
+         try{
+            if(statsConnection != null){ statsConnection.close(); }
+         }catch(SQLException ignored){}
+         statsConnection = null;
+      }
+   }//end sample
+
+   // --- recording, called from Cafe -------------------------------------
+
+   public void orderPlaced(){ ordersPlaced.add(1); }
+
+   public void checkoutFinished(long startNanos){
+      long nanos = System.nanoTime() - startNanos;
+      checkouts.add(1);
+      checkoutNanos.add(nanos);
+      for(int i = 0; i < CHECKOUT_BUCKETS_MS.length; i++){
+         if(nanos <= CHECKOUT_BUCKETS_MS[i] * 1000000L){
+            checkoutBuckets[i].add(1);
+            break;
+         }
+      }
+      long max = checkoutMaxNanos.get();
+      while(nanos > max && !checkoutMaxNanos.compareAndSet(max, nanos)){
+         max = checkoutMaxNanos.get();
+      }
+   }
+
+   public void sessionOpened(){ activeSessions.add(1); }
+   public void sessionClosed(){ activeSessions.add(-1); }
+
+   public void loginSucceeded(){ loginSuccesses.add(1); }
+   public void loginFailed(){ loginFailures.add(1); }
+
+   public void connectionOpened(){ openConnections.add(1); }
+   public void connectionClosed(){ openConnections.add(-1); }
+
+   /**
+    * @return the start time to pass to statementFinished
+    */
+   public long statementStarted(){
+      statementsInFlight.add(1);
+      return System.nanoTime();
+   }
+
+   public void statementFinished(long startNanos){
+      statementFinished(startNanos, 1);
+   }
+
+   /**
+    * Ends a JDBC batch started with statementStarted, counting each of
+    * its statements.
+    */
+   public void statementFinished(long startNanos, int count){
+      statementNanos.add(System.nanoTime() - startNanos);
+      statementsInFlight.add(-1);
+      statements.add(count);
+   }
+
+   public void rowsFetched(int rows){ rowsFetched.add(rows); }
+
+   // --- CafeMetricsMBean ------------------------------------------------
+
+   public long getOrdersPlaced(){return ordersPlaced.sum();}
+   public double getOrdersPerSecond(){return ordersPerSecond;}
+
+   public long getCheckouts(){return checkouts.sum();}
+   public double getCheckoutLatencyAvgMillis(){
+      long count = checkouts.sum();
+      return count == 0 ? 0 : checkoutNanos.sum() / 1e6 / count;
+   }
+   public double getCheckoutLatencyMaxMillis(){return checkoutMaxNanos.get() / 1e6;}
+
+   public long getActiveSessions(){return activeSessions.sum();}
+   public long getLoginSuccesses(){return loginSuccesses.sum();}
+   public long getLoginFailures(){return loginFailures.sum();}
+
+   public long getOpenConnections(){return openConnections.sum();}
+   public long getStatementsExecuted(){return statements.sum();}
+   public long getStatementsInFlight(){return statementsInFlight.sum();}
+   public double getStatementSeconds(){return statementNanos.sum() / 1e9;}
+   public long getDatabaseBackends(){return databaseBackends;}
+
+   public double getCacheHitRatio(){
+      long hit = blocksHit, read = blocksRead;
+      return hit + read == 0 ? 0 : (double)hit / (hit + read);
+   }
+
+   public long getRowsFetched(){return rowsFetched.sum();}
+
+   // --- Prometheus text format ------------------------------------------
+
+   private String prometheus(){
+      StringBuilder sb = new StringBuilder();
+      metric(sb, "cafe_orders_placed_total", "counter", "Orders checked out.", getOrdersPlaced());
+      metric(sb, "cafe_orders_per_second", "gauge", "Orders checked out per second over the last sample.", getOrdersPerSecond());
+
+      sb.append("# HELP cafe_checkout_seconds Time taken to check out an order.\n");
+      sb.append("# TYPE cafe_checkout_seconds histogram\n");
+      long cumulative = 0;
+      for(int i = 0; i < CHECKOUT_BUCKETS_MS.length; i++){
+         cumulative += checkoutBuckets[i].sum();
+         sb.append(String.format(Locale.ROOT, "cafe_checkout_seconds_bucket{le=\"%s\"} %d\n", CHECKOUT_BUCKETS_MS[i] / 1000.0, cumulative));
+      }
+      long count = checkouts.sum();
+      sb.append(String.format(Locale.ROOT, "cafe_checkout_seconds_bucket{le=\"+Inf\"} %d\n", count));
+      sb.append("cafe_checkout_seconds_sum ").append(checkoutNanos.sum() / 1e9).append('\n');
+      sb.append("cafe_checkout_seconds_count ").append(count).append('\n');
+
+      metric(sb, "cafe_active_sessions", "gauge", "Users currently logged in.", getActiveSessions());
+      metric(sb, "cafe_login_success_total", "counter", "Successful logins.", getLoginSuccesses());
+      metric(sb, "cafe_login_failure_total", "counter", "Failed logins.", getLoginFailures());
+
+      metric(sb, "cafe_db_connections_open", "gauge", "Open application database connections.", getOpenConnections());
+      metric(sb, "cafe_db_statements_total", "counter", "SQL statements executed.", getStatementsExecuted());
+      metric(sb, "cafe_db_statements_in_flight", "gauge", "SQL statements currently executing.", getStatementsInFlight());
+      metric(sb, "cafe_db_statement_seconds_total", "counter", "Time spent executing SQL statements.", getStatementSeconds());
+      metric(sb, "cafe_db_backends", "gauge", "Backends connected to the database.", getDatabaseBackends());
+
+      metric(sb, "cafe_db_blocks_hit_total", "counter", "Postgres buffer cache hits.", blocksHit);
+      metric(sb, "cafe_db_blocks_read_total", "counter", "Postgres blocks read from disk.", blocksRead);
+      metric(sb, "cafe_db_cache_hit_ratio", "gauge", "Postgres buffer cache hit ratio.", getCacheHitRatio());
+
+      metric(sb, "cafe_rows_fetched_total", "counter", "Rows returned by executeQueryAndReturnResult.", getRowsFetched());
+      return sb.toString();
+   }
+
+   private static void metric(StringBuilder sb, String name, String type, String help, Object value){
+      sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+      sb.append(name).append(' ').append(value).append('\n');
+   }
+
+   /**
+    * A lock-free counter spread over several cells, one cache line apart,
+    * so threads updating it at the same time do not contend on one line.
+    */
+   static final class StripedCounter {
+      // longs per 64 byte cache line
+      private static final int PAD = 8;
+
+      private final AtomicLongArray cells;
+      private final int mask;
+
+      StripedCounter(){
+         int stripes = 1;
+         while(stripes < Runtime.getRuntime().availableProcessors() * 2){
+            stripes <<= 1;
+         }
+         cells = new AtomicLongArray(stripes * PAD);
+         mask = stripes - 1;
+      }
+
+      void add(long delta){
+         int stripe = (int)((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+         cells.getAndAdd(stripe * PAD, delta);
+      }
+
+      long sum(){
+         long sum = 0;
+         for(int i = 0; i < cells.length(); i += PAD){
+            sum += cells.get(i);
+         }
+         return sum;
+      }
+   }//end StripedCounter
+
+}//end CafeMetrics
@@ -0,0 +1,34 @@
+/**
+ * Management interface of {@link CafeMetrics}. It is registered with the
+ * platform MBean server as "Cafe:type=Metrics".
+ */
+public interface CafeMetricsMBean {
+
+   // orders
+   long getOrdersPlaced();
+   double getOrdersPerSecond();
+
+   // checkout latency
+   long getCheckouts();
+   double getCheckoutLatencyAvgMillis();
+   double getCheckoutLatencyMaxMillis();
+
+   // sessions and logins
+   long getActiveSessions();
+   long getLoginSuccesses();
+   long getLoginFailures();
+
+   // database connection usage
+   long getOpenConnections();
+   long getStatementsExecuted();
+   long getStatementsInFlight();
+   double getStatementSeconds();
+   long getDatabaseBackends();
+
+   // postgres buffer cache
+   double getCacheHitRatio();
+
+   // rows returned by executeQueryAndReturnResult
+   long getRowsFetched();
+
+}//end CafeMetricsMBean
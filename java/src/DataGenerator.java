@@ -0,0 +1,447 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+
+/**
+ * Generates Users, Orders and ItemStatus rows for scale testing. Scale 1
+ * is about the size of the data in misc/files.zip (28k users, 87k orders)
+ * and every other scale multiplies it.
+ *
+ * The rows follow sql/src/create_tables.sql. Items are taken from the
+ * menu file so every ItemStatus row has a valid Menu foreign key. Order
+ * ids grow with time the way the serial column would assign them, with
+ * more orders in recent days and at meal times. Customers are picked from
+ * a Zipf distribution so a few regulars place most of the orders.
+ *
+ * Work is split into one partition per thread. Each partition is written
+ * to its own set of csv files together with a load script, or copied
+ * straight into the database with COPY. Every row is generated from its
+ * own id, so the output is the same for any number of threads.
+ *
+ * Tuning system properties: datagen.threads, datagen.seed, datagen.zipf,
+ * datagen.days and datagen.end ("yyyy-MM-dd HH:mm:ss").
+ */
+public class DataGenerator {
+
+   // rows at scale 1, matching misc/files.zip
+   private static final int BASE_USERS = 28000;
+   private static final int BASE_ORDERS = 87000;
+   private static final int BASE_DAYS = 49;
+
+   // relative number of orders placed in each hour of the day
+   private static final double[] HOUR_WEIGHTS = {
+      0.1, 0.05, 0.05, 0.05, 0.1, 0.3, 1.0, 2.5, 4.0, 3.0, 2.0, 2.5,
+      4.5, 4.0, 2.0, 1.5, 2.0, 3.0, 3.5, 2.5, 1.5, 1.0, 0.5, 0.2};
+
+   private static final String[] FIRST_NAMES = {"Amy", "Bob", "Wava", "Garret", "Theresa", "Zola", "Zoie", "Ana", "Lee", "Sam", "Kai", "Mia", "Noah", "Ivy", "Omar", "Ruth"};
+   private static final String[] LAST_NAMES = {"Upton", "Will", "Von", "Auer", "Turner", "Sawayn", "Brakus", "Kim", "Diaz", "Nguyen", "Patel", "Smith", "Lopez", "Chen", "Moore", "Ortiz"};
+
+   private static final String USERS_COPY = "COPY Users FROM STDIN WITH DELIMITER ';'";
+   private static final String ORDERS_COPY = "COPY Orders (orderid, login, paid, timeStampRecieved, total) FROM STDIN WITH DELIMITER ';'";
+   private static final String ITEMS_COPY = "COPY ItemStatus (orderid, itemName, lastUpdated, status, comments, price) FROM STDIN WITH DELIMITER ';'";
+
+   // rows are handed to the output in chunks of about this many characters
+   private static final int CHUNK_CHARS = 1 << 20;
+
+   private final long seed = Long.getLong("datagen.seed", 166);
+   private final double zipf = Double.parseDouble(System.getProperty("datagen.zipf", "1.1"));
+   private final int threads = Integer.getInteger("datagen.threads", Runtime.getRuntime().availableProcessors());
+
+   private final int users;
+   private final long orders;
+   private final long endMillis;
+
+   private final List<String> itemNames = new ArrayList<String>();
+   private final List<Double> itemPrices = new ArrayList<Double>();
+   private final double[] itemCdf;
+
+   // cumulative order weight of every hour between the first and the last order
+   private final double[] hourCdf;
+   private final long startMillis;
+
+   // users[rank * customerStride % users] is the customer with Zipf rank "rank"
+   private final long customerStride;
+
+   public DataGenerator(double scale, String menuFile) throws IOException {
+      users = (int)Math.max(10, Math.round(BASE_USERS * scale));
+      orders = Math.max(10, Math.round(BASE_ORDERS * scale));
+
+      SimpleDateFormat fmt = timestampFormat();
+      try{
+         endMillis = fmt.parse(System.getProperty("datagen.end", "2016-10-29 00:00:00")).getTime();
+      }catch(java.text.ParseException e){
+         throw new IllegalArgumentException("datagen.end must look like 2016-10-29 00:00:00");
+      }
+
+      BufferedReader in = new BufferedReader(new FileReader(menuFile));
+      String line;
+      while ((line = in.readLine()) != null){
+         if (line.trim().isEmpty()) continue;
+         String[] f = line.split(";", -1);
+         itemNames.add(f[0]);
+         itemPrices.add(Double.parseDouble(f[2]));
+      }
+      in.close();
+      if (itemNames.isEmpty()) throw new IllegalArgumentException("No items in " + menuFile);
+
+      // a few menu items sell better than the rest
+      itemCdf = new double[itemNames.size()];
+      double sum = 0;
+      for (int i = 0; i < itemCdf.length; i++){
+         sum += 1.0 / Math.pow(i + 1, 0.5);
+         itemCdf[i] = sum;
+      }
+
+      // the history gets longer with scale up to ten years, after that it only gets busier
+      int days = Integer.getInteger("datagen.days", (int)Math.min(3650, Math.max(1, Math.round(BASE_DAYS * scale))));
+      startMillis = endMillis - days * 86400000L;
+      hourCdf = new double[days * 24];
+      Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT);
+      sum = 0;
+      for (int h = 0; h < hourCdf.length; h++){
+         int day = h / 24;
+         calendar.setTimeInMillis(startMillis + day * 86400000L);
+         int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK);
+         // business grows over time and weekends are quieter
+         double growth = 0.5 + (double)day / days;
+         double weekday = (dayOfWeek == Calendar.SATURDAY || dayOfWeek == Calendar.SUNDAY) ? 0.7 : 1.0;
+         sum += growth * weekday * HOUR_WEIGHTS[h % 24];
+         hourCdf[h] = sum;
+      }
+
+      long stride = 1000003;
+      while (gcd(stride, users) != 1) stride += 2;
+      customerStride = stride;
+   }
+
+   private static long gcd(long a, long b){
+      return b == 0 ? a : gcd(b, a % b);
+   }
+
+   private static SimpleDateFormat timestampFormat(){
+      SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+      fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return fmt;
+   }
+
+   /*
+    * SplitMix64, reseeded from the row id so every row is the same no
+    * matter which thread generates it.
+    **/
+   private static final class Rng {
+      private long state;
+
+      void reset(long seed, long id){
+         state = seed * 0x9E3779B97F4A7C15L + id;
+      }
+
+      long nextLong(){
+         long z = (state += 0x9E3779B97F4A7C15L);
+         z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+         z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+         return z ^ (z >>> 31);
+      }
+
+      double nextDouble(){
+         return (nextLong() >>> 11) * 0x1.0p-53;
+      }
+
+      int nextInt(int n){
+         return (int)(nextDouble() * n);
+      }
+   }
+
+   static String login(int user){
+      if (user == 0) return "Admin";
+      return FIRST_NAMES[user % FIRST_NAMES.length] + "." + LAST_NAMES[(user / FIRST_NAMES.length) % LAST_NAMES.length] + user;
+   }
+
+   private static int search(double[] cdf, double value){
+      int lo = 0, hi = cdf.length - 1;
+      while (lo < hi){
+         int mid = (lo + hi) >>> 1;
+         if (cdf[mid] < value) lo = mid + 1; else hi = mid;
+      }
+      return lo;
+   }
+
+   // the first users are staff, everyone else is a customer
+   private int staff(){
+      return Math.max(2, users / 1000);
+   }
+
+   private void userRow(int user, Rng rng, StringBuilder out){
+      rng.reset(seed, -1 - user);
+      String type = user == 0 ? "Manager" : user < staff() ? "Employee" : "Customer";
+      // phone numbers are a permutation of the user ids so they stay unique
+      long phone = (user * 7919L + 2000000000L) % 10000000000L;
+      out.append(login(user)).append(';');
+      out.append(String.format(Locale.ROOT, "+1(%03d)%03d-%04d", phone / 10000000, phone / 10000 % 1000, phone % 10000)).append(';');
+      out.append(user == 0 ? "admin" : Long.toHexString(rng.nextLong())).append(';');
+      int favourites = rng.nextInt(4);
+      for (int i = 0; i < favourites; i++){
+         if (i > 0) out.append(',');
+         out.append(itemNames.get(search(itemCdf, rng.nextDouble() * itemCdf[itemCdf.length - 1])));
+      }
+      out.append(';').append(type).append('\n');
+   }
+
+   /*
+    * Picks a customer with a continuous approximation of the Zipf distribution
+    **/
+   private int customer(Rng rng){
+      int customers = users - staff();
+      double u = rng.nextDouble();
+      long rank;
+      if (Math.abs(zipf - 1) < 1e-9){
+         rank = (long)Math.pow(customers, u);
+      } else {
+         rank = (long)Math.pow((Math.pow(customers, 1 - zipf) - 1) * u + 1, 1 / (1 - zipf));
+      }
+      rank = Math.min(Math.max(rank, 1), customers) - 1;
+      return staff() + (int)(rank * customerStride % customers);
+   }
+
+   private void orderRows(long orderid, Rng rng, SimpleDateFormat fmt, StringBuilder orderOut, StringBuilder itemOut){
+      rng.reset(seed, orderid);
+
+      // position the order in the weighted hours so ids grow with time
+      double target = (orderid - 0.5) / orders * hourCdf[hourCdf.length - 1];
+      int hour = search(hourCdf, target);
+      double before = hour == 0 ? 0 : hourCdf[hour - 1];
+      double within = (target - before) / (hourCdf[hour] - before);
+      long placed = startMillis + hour * 3600000L + (long)(within * 3600000L) / 60000 * 60000;
+      String timestamp = fmt.format(new Date(placed));
+
+      boolean recent = endMillis - placed < 86400000L;
+      boolean paid = rng.nextDouble() < (recent ? 0.4 : 0.97);
+
+      // one to three different items per order
+      int count = Math.min(1 + rng.nextInt(3), itemCdf.length);
+      int[] items = new int[count];
+      double total = 0;
+      for (int i = 0; i < count; i++){
+         int item;
+         boolean repeat;
+         do {
+            item = search(itemCdf, rng.nextDouble() * itemCdf[itemCdf.length - 1]);
+            repeat = false;
+            for (int j = 0; j < i; j++) repeat |= items[j] == item;
+         } while (repeat);
+         items[i] = item;
+         total += itemPrices.get(item);
+      }
+
+      orderOut.append(orderid).append(';').append(login(customer(rng))).append(';').append(paid).append(';')
+              .append(timestamp).append(';').append(String.format(Locale.ROOT, "%.2f", total)).append('\n');
+      for (int i = 0; i < count; i++){
+         String status;
+         if (paid || !recent){
+            status = "Finished";
+         } else {
+            double s = rng.nextDouble();
+            status = s < 0.4 ? "Hasn't started" : s < 0.8 ? "Started" : "Finished";
+         }
+         String updated = fmt.format(new Date(placed + rng.nextInt(20) * 60000L));
+         itemOut.append(orderid).append(';').append(itemNames.get(items[i])).append(';')
+                .append(updated).append(';').append(status).append(";;")
+                .append(String.format(Locale.ROOT, "%.2f", itemPrices.get(items[i]))).append('\n');
+      }
+   }
+
+   /*
+    * Where a partition's rows go: part files on disk or COPY into the database
+    **/
+   private interface Output {
+      void write(String copy, StringBuilder rows) throws IOException, SQLException;
+      void close() throws IOException, SQLException;
+   }
+
+   private static final class FileOutput implements Output {
+      private final Writer users, orders, items;
+
+      FileOutput(File dir, int part) throws IOException {
+         users = new BufferedWriter(new FileWriter(new File(dir, "users-" + part + ".csv")));
+         orders = new BufferedWriter(new FileWriter(new File(dir, "orders-" + part + ".csv")));
+         items = new BufferedWriter(new FileWriter(new File(dir, "itemStatus-" + part + ".csv")));
+      }
+
+      public void write(String copy, StringBuilder rows) throws IOException {
+         (copy.equals(USERS_COPY) ? users : copy.equals(ORDERS_COPY) ? orders : items).append(rows);
+      }
+
+      public void close() throws IOException {
+         users.close();
+         orders.close();
+         items.close();
+      }
+   }
+
+   // one connection and transaction per partition, committed when it is done
+   private static final class CopyOutput implements Output {
+      private final Connection connection;
+      private final CopyManager copy;
+
+      CopyOutput(String url, String user) throws SQLException {
+         connection = DriverManager.getConnection(url, user, "");
+         connection.setAutoCommit(false);
+         copy = connection.unwrap(PGConnection.class).getCopyAPI();
+      }
+
+      public void write(String sql, StringBuilder rows) throws IOException, SQLException {
+         copy.copyIn(sql, new StringReader(rows.toString()));
+      }
+
+      public void close() throws SQLException {
+         connection.commit();
+         connection.close();
+      }
+   }
+
+   /*
+    * Generates users [userFrom, userTo) and orders [orderFrom, orderTo).
+    * Orders are 1 based like the serial column.
+    **/
+   private void partition(int userFrom, int userTo, long orderFrom, long orderTo, Output out) throws IOException, SQLException {
+      Rng rng = new Rng();
+      SimpleDateFormat fmt = timestampFormat();
+      StringBuilder rows = new StringBuilder();
+      for (int u = userFrom; u < userTo; u++){
+         userRow(u, rng, rows);
+         if (rows.length() > CHUNK_CHARS){
+            out.write(USERS_COPY, rows);
+            rows.setLength(0);
+         }
+      }
+      if (rows.length() > 0) out.write(USERS_COPY, rows);
+
+      // each chunk of orders goes out before its items so the foreign key holds
+      StringBuilder items = new StringBuilder();
+      rows.setLength(0);
+      for (long o = orderFrom; o < orderTo; o++){
+         orderRows(o, rng, fmt, rows, items);
+         if (items.length() > CHUNK_CHARS){
+            out.write(ORDERS_COPY, rows);
+            out.write(ITEMS_COPY, items);
+            rows.setLength(0);
+            items.setLength(0);
+         }
+      }
+      if (rows.length() > 0) out.write(ORDERS_COPY, rows);
+      if (items.length() > 0) out.write(ITEMS_COPY, items);
+      out.close();
+   }
+
+   /*
+    * Runs every partition on its own thread
+    * @param dir where part files go, or null to COPY using url and user
+    **/
+   public void generate(final File dir, final String url, final String user) throws Exception {
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      List<Future<Void>> parts = new ArrayList<Future<Void>>();
+      for (int p = 0; p < threads; p++){
+         final int part = p;
+         final int userFrom = (int)((long)users * p / threads), userTo = (int)((long)users * (p + 1) / threads);
+         final long orderFrom = 1 + orders * p / threads, orderTo = 1 + orders * (p + 1) / threads;
+         parts.add(pool.submit(new java.util.concurrent.Callable<Void>(){
+            public Void call() throws Exception {
+               Output out = dir != null ? new FileOutput(dir, part) : new CopyOutput(url, user);
+               partition(userFrom, userTo, orderFrom, orderTo, out);
+               return null;
+            }
+         }));
+      }
+      try{
+         for (Future<Void> part : parts) part.get();
+      }finally{
+         pool.shutdown();
+      }
+
+      String restart = "ALTER SEQUENCE orders_orderid_seq RESTART " + (orders + 1);
+      if (dir != null){
+         writeLoadScript(dir, restart);
+      } else {
+         Connection connection = DriverManager.getConnection(url, user, "");
+         Statement stmt = connection.createStatement();
+         stmt.executeUpdate(restart);
+         stmt.close();
+         connection.close();
+      }
+   }
+
+   private void writeLoadScript(File dir, String restart) throws IOException {
+      Writer out = new BufferedWriter(new FileWriter(new File(dir, "load_data.sql")));
+      String[][] tables = {{"USERS", "users"}, {"ORDERS (orderid, login, paid, timeStampRecieved, total)", "orders"}, {"ITEMSTATUS (orderid, itemName, lastUpdated, status, comments, price)", "itemStatus"}};
+      for (String[] table : tables){
+         for (int p = 0; p < threads; p++){
+            out.write("COPY " + table[0] + "\nFROM '" + new File(dir, table[1] + "-" + p + ".csv").getAbsolutePath() + "'\nWITH DELIMITER ';';\n\n");
+         }
+      }
+      out.write(restart + ";\n");
+      out.close();
+   }
+
+   public static void main(String[] args){
+      boolean copy = args.length == 6 && args[2].equals("-copy");
+      if (args.length != 3 && !copy){
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            DataGenerator.class.getName() +
+            " <scale> <menu file> <output dir>\n" +
+            "       java [-classpath <classpath>] " +
+            DataGenerator.class.getName() +
+            " <scale> <menu file> -copy <dbname> <port> <user>");
+         System.exit(2);
+      }
+
+      try{
+         long start = System.currentTimeMillis();
+         DataGenerator gen = new DataGenerator(Double.parseDouble(args[0]), args[1]);
+         if (copy){
+            // Menu has to be loaded already for the ItemStatus foreign key
+            Class.forName("org.postgresql.Driver");
+            String url = "jdbc:postgresql://localhost:" + args[4] + "/" + args[3] + "?gssEncMode=disable";
+            gen.generate(null, url, args[5]);
+         } else {
+            File dir = new File(args[2]);
+            dir.mkdirs();
+            gen.generate(dir, null, null);
+         }
+         long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+         System.out.println("------------------------------------------");
+         System.out.println("Users:   " + gen.users);
+         System.out.println("Orders:  " + gen.orders);
+         System.out.println("Threads: " + gen.threads);
+         System.out.println(String.format("Elapsed: %d ms (%.0f orders/s)", elapsed, gen.orders * 1000.0 / elapsed));
+         System.out.println("------------------------------------------");
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+         System.exit(1);
+      }
+   }//end main
+
+}//end DataGenerator
@@ -0,0 +1,310 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Query plan regression check for the SQL issued by Cafe. Every statement
+ * of a workload file is run with EXPLAIN (ANALYZE, BUFFERS) against a
+ * database loaded at scale and compared with a stored baseline.
+ *
+ * The workload is "<workflow>\t<sql>" per line, either hand written or
+ * captured from a Cafe session run with -Dcafe.sql.capture=<file>. The
+ * statements of one workflow run in a single transaction that is rolled
+ * back afterwards, so updates never change the database.
+ *
+ * A statement fails the check when its estimated cost grew by more than
+ * plancheck.tolerance (default 0.2) over the baseline, when it does a
+ * sequential scan of a large table (plancheck.largeRows rows, default
+ * 10000, after analyzing the tables of the current schema) that the
+ * baseline did not have, or when it errors. Passing
+ * -update writes the current plans as the new baseline instead, unless a
+ * statement errored and would be missing from it.
+ */
+public class PlanCheck {
+
+   private static final Pattern COST = Pattern.compile("cost=[0-9.]+\\.\\.([0-9.]+)");
+   private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+   private static final Pattern EXECUTION = Pattern.compile("Execution Time: ([0-9.]+) ms");
+   private static final Pattern BUFFERS = Pattern.compile("Buffers: shared ((hit=\\d+)? ?(read=\\d+)?)");
+
+   // what one EXPLAIN run found, also the format of a baseline entry
+   private static class Plan {
+      double cost;
+      double millis;
+      String buffers = "";
+      Set<String> seqScans = new HashSet<String>();
+   }
+
+   private final Connection _connection;
+   private final Set<String> largeTables = new HashSet<String>();
+
+   public PlanCheck(String dbname, String dbport, String user, String passwd) throws SQLException {
+      String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?gssEncMode=disable";
+      this._connection = DriverManager.getConnection(url, user, passwd);
+
+      // reltuples is not set until a table is analyzed, which a bulk COPY
+      // does not do, so refresh the statistics of the application tables first
+      Statement stmt = _connection.createStatement();
+      List<String> tables = new ArrayList<String>();
+      ResultSet rs = stmt.executeQuery("SELECT c.relname FROM pg_class c, pg_namespace n WHERE c.relnamespace = n.oid AND n.nspname = current_schema() AND c.relkind = 'r'");
+      while (rs.next()){
+         tables.add(rs.getString(1));
+      }
+      for (String table : tables){
+         stmt.execute("ANALYZE \"" + table + "\"");
+      }
+
+      long largeRows = Long.getLong("plancheck.largeRows", 10000);
+      rs = stmt.executeQuery("SELECT c.relname FROM pg_class c, pg_namespace n WHERE c.relnamespace = n.oid AND n.nspname = current_schema() AND c.relkind = 'r' AND c.reltuples >= " + largeRows);
+      while (rs.next()){
+         largeTables.add(rs.getString(1).toLowerCase());
+      }
+      stmt.close();
+   }
+
+   /*
+    * Reduces a statement to its shape so the same query with other values
+    * maps to one baseline entry.
+    **/
+   static String normalize(String sql){
+      return sql.replaceAll("'[^']*'", "?")
+                .replaceAll("\\b\\d+(\\.\\d+)?\\b", "?")
+                .replaceAll("\\s+", " ")
+                .trim();
+   }
+
+   /*
+    * Reads a workload file keeping the first statement of each shape per
+    * workflow. Statements are grouped by workflow in order of appearance.
+    * @return statements keyed by "<workflow>\t<normalized sql>"
+    **/
+   static Map<String, String> readWorkload(String fileName) throws IOException {
+      Map<String, Map<String, String>> workflows = new LinkedHashMap<String, Map<String, String>>();
+      BufferedReader in = new BufferedReader(new FileReader(fileName));
+      String line;
+      while ((line = in.readLine()) != null){
+         if (line.trim().isEmpty() || line.startsWith("#")) continue;
+         int tab = line.indexOf('\t');
+         if (tab < 0) continue;
+         String sql = line.substring(tab + 1).trim();
+         String verb = sql.split("\\s+")[0].toUpperCase();
+         // transaction control and savepoints have no plan
+         if (!verb.equals("SELECT") && !verb.equals("INSERT") && !verb.equals("UPDATE") && !verb.equals("DELETE")) continue;
+         String workflow = line.substring(0, tab).trim();
+         if (!workflows.containsKey(workflow)) workflows.put(workflow, new LinkedHashMap<String, String>());
+         String key = workflow + "\t" + normalize(sql);
+         if (!workflows.get(workflow).containsKey(key)) workflows.get(workflow).put(key, sql);
+      }
+      in.close();
+
+      Map<String, String> workload = new LinkedHashMap<String, String>();
+      for (Map<String, String> statements : workflows.values()){
+         workload.putAll(statements);
+      }
+      return workload;
+   }
+
+   static Map<String, Plan> readBaseline(String fileName) throws IOException {
+      Map<String, Plan> baseline = new LinkedHashMap<String, Plan>();
+      if (!new File(fileName).exists()) return baseline;
+      BufferedReader in = new BufferedReader(new FileReader(fileName));
+      String line;
+      while ((line = in.readLine()) != null){
+         String[] f = line.split("\t", -1);
+         if (f.length != 4) continue;
+         Plan plan = new Plan();
+         plan.cost = Double.parseDouble(f[2]);
+         for (String table : f[3].split(",")){
+            if (!table.isEmpty()) plan.seqScans.add(table);
+         }
+         baseline.put(f[0] + "\t" + f[1], plan);
+      }
+      in.close();
+      return baseline;
+   }
+
+   static void writeBaseline(String fileName, Map<String, Plan> plans) throws IOException {
+      FileWriter out = new FileWriter(fileName);
+      for (Map.Entry<String, Plan> e : plans.entrySet()){
+         StringBuilder scans = new StringBuilder();
+         for (String table : e.getValue().seqScans){
+            if (scans.length() > 0) scans.append(',');
+            scans.append(table);
+         }
+         out.write(e.getKey() + "\t" + e.getValue().cost + "\t" + scans + "\n");
+      }
+      out.close();
+   }
+
+   /*
+    * Runs EXPLAIN (ANALYZE, BUFFERS) for one statement inside the current
+    * transaction. A savepoint keeps a failing statement from aborting the
+    * rest of the workflow.
+    **/
+   private Plan explain(String sql) throws SQLException {
+      Statement stmt = _connection.createStatement();
+      stmt.execute("SAVEPOINT plan_check");
+      try{
+         ResultSet rs = stmt.executeQuery("EXPLAIN (ANALYZE, BUFFERS) " + sql);
+         Plan plan = new Plan();
+         boolean first = true;
+         while (rs.next()){
+            String line = rs.getString(1);
+            Matcher m = COST.matcher(line);
+            if (first && m.find()){
+               plan.cost = Double.parseDouble(m.group(1));
+               first = false;
+            }
+            m = SEQ_SCAN.matcher(line);
+            if (m.find() && largeTables.contains(m.group(1).toLowerCase())){
+               plan.seqScans.add(m.group(1).toLowerCase());
+            }
+            m = BUFFERS.matcher(line);
+            if (plan.buffers.isEmpty() && m.find()){
+               plan.buffers = m.group(1).trim();
+            }
+            m = EXECUTION.matcher(line);
+            if (m.find()){
+               plan.millis = Double.parseDouble(m.group(1));
+            }
+         }
+         stmt.execute("RELEASE SAVEPOINT plan_check");
+         return plan;
+      }catch(SQLException e){
+         stmt.execute("ROLLBACK TO SAVEPOINT plan_check");
+         throw e;
+      }finally{
+         stmt.close();
+      }
+   }
+
+   /*
+    * Explains the whole workload, prints a report and compares it with the baseline
+    * @return the number of regressions found
+    **/
+   public int check(Map<String, String> workload, Map<String, Plan> baseline, Map<String, Plan> plans) throws SQLException {
+      double tolerance = Double.parseDouble(System.getProperty("plancheck.tolerance", "0.2"));
+      int regressions = 0;
+      String workflow = null;
+
+      _connection.setAutoCommit(false);
+      try{
+         for (Map.Entry<String, String> e : workload.entrySet()){
+            String key = e.getKey();
+            String current = key.substring(0, key.indexOf('\t'));
+            if (!current.equals(workflow)){
+               _connection.rollback();
+               workflow = current;
+               System.out.println("\n" + workflow);
+               System.out.println("------------------------------------------");
+            }
+
+            Plan plan;
+            try{
+               plan = explain(e.getValue());
+            }catch(SQLException ex){
+               System.out.println("ERROR      " + e.getValue());
+               System.out.println("           " + ex.getMessage());
+               regressions++;
+               continue;
+            }
+            plans.put(key, plan);
+
+            Plan base = baseline.get(key);
+            List<String> problems = new ArrayList<String>();
+            if (base != null && plan.cost > base.cost * (1 + tolerance)){
+               problems.add(String.format("cost %.2f -> %.2f", base.cost, plan.cost));
+            }
+            for (String table : plan.seqScans){
+               if (base == null || !base.seqScans.contains(table)){
+                  problems.add("new seq scan on " + table);
+               }
+            }
+
+            String status = !problems.isEmpty() ? "REGRESSION" : !plan.seqScans.isEmpty() ? "SEQ SCAN" : base == null ? "NEW" : "OK";
+            System.out.println(String.format("%-10s %s", status, e.getValue()));
+            System.out.println(String.format("           cost=%.2f time=%.3f ms buffers=[%s] seq scans=%s", plan.cost, plan.millis, plan.buffers, plan.seqScans));
+            for (String problem : problems){
+               System.out.println("           " + problem);
+            }
+            regressions += problems.isEmpty() ? 0 : 1;
+         }
+      }finally{
+         _connection.rollback();
+         _connection.setAutoCommit(true);
+      }
+      return regressions;
+   }
+
+   public void cleanup(){
+      try{
+         _connection.close();
+      }catch(SQLException e){
+         // ignored.
+      }
+   }
+
+   public static void main(String[] args){
+      if (args.length < 5 || args.length > 6 || (args.length == 6 && !args[5].equals("-update"))){
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PlanCheck.class.getName() +
+            " <dbname> <port> <user> <workload file> <baseline file> [-update]");
+         System.exit(2);
+      }
+      boolean update = args.length == 6;
+
+      PlanCheck check = null;
+      try{
+         Class.forName("org.postgresql.Driver");
+         check = new PlanCheck(args[0], args[1], args[2], "");
+
+         Map<String, String> workload = readWorkload(args[3]);
+         Map<String, Plan> baseline = readBaseline(args[4]);
+         Map<String, Plan> plans = new LinkedHashMap<String, Plan>();
+         int regressions = check.check(workload, baseline, plans);
+
+         System.out.println("\n------------------------------------------");
+         System.out.println("Statements checked: " + workload.size());
+         if (update){
+            if (plans.size() < workload.size()){
+               System.out.println("Baseline not written, " + (workload.size() - plans.size()) + " statements failed");
+               check.cleanup();
+               System.exit(1);
+            }
+            writeBaseline(args[4], plans);
+            System.out.println("Baseline written:   " + args[4]);
+            return;
+         }
+         System.out.println("Regressions:        " + regressions);
+         if (regressions > 0){
+            check.cleanup();
+            System.exit(1);
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+         if (check != null) check.cleanup();
+         System.exit(2);
+      }finally{
+         if (check != null) check.cleanup();
+      }
+   }//end main
+
+}//end PlanCheck
@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+JAVA="$DIR/../../java"
+
+# run against a database loaded at scale, pass -update to accept the current plans
+java -cp $JAVA/classes:$JAVA/lib/pg73jdbc3.jar PlanCheck "project" 5432 cs172 $DIR/../plans/workload.txt $DIR/../plans/baseline.txt "$@"
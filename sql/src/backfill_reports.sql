@@ -0,0 +1,32 @@
+-- Rebuilds the report summaries from the order history. Cafe keeps them
+-- up to date after this, so it only has to run after a bulk load.
+-- TRUNCATE locks the summaries until COMMIT, so checkouts running at the
+-- same time wait and then add their own order on top.
+BEGIN;
+
+-- rows loaded from csv have no recorded sale price, they get today's
+-- menu price once and keep it from then on
+UPDATE ItemStatus I
+SET price = M.price
+FROM Menu M
+WHERE I.itemName = M.itemName AND I.price IS NULL;
+
+TRUNCATE ItemSales, HourlySales, CustomerSales;
+
+INSERT INTO ItemSales (itemName, quantity, revenue)
+SELECT itemName, COUNT(*), SUM(price::numeric(12,2))
+FROM ItemStatus
+GROUP BY itemName;
+
+INSERT INTO HourlySales (hour, orders, revenue)
+SELECT date_trunc('hour', timeStampRecieved), COUNT(*), SUM(total::numeric(12,2))
+FROM Orders
+GROUP BY date_trunc('hour', timeStampRecieved);
+
+INSERT INTO CustomerSales (login, orders, revenue, unpaid)
+SELECT login, COUNT(*), SUM(total::numeric(12,2)), SUM(CASE WHEN paid THEN 0 ELSE total::numeric(12,2) END)
+FROM Orders
+WHERE login IS NOT NULL
+GROUP BY login;
+
+COMMIT;
@@ -5,3 +5,11 @@ ON orders
 CREATE INDEX index2
 ON ItemStatus
 ( orderid );
+
+CREATE INDEX index3
+ON CustomerSales
+( revenue );
+
+CREATE INDEX index4
+ON CustomerSales
+( unpaid );
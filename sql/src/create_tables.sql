@@ -2,6 +2,9 @@ DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP TABLE ItemSales;
+DROP TABLE HourlySales;
+DROP TABLE CustomerSales;
 
 CREATE TABLE Users(
 	login char(50) UNIQUE NOT NULL, 
@@ -25,6 +28,7 @@ CREATE TABLE Orders(
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
 	total real NOT NULL,
+	version integer NOT NULL DEFAULT 0,
 	PRIMARY KEY(orderid));
 
 CREATE TABLE ItemStatus(
@@ -33,6 +37,26 @@ CREATE TABLE ItemStatus(
 	lastUpdated timestamp NOT NULL,
 	status char(20), 
 	comments char(130), 
+	price real,
 	PRIMARY KEY(orderid,itemName),
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+
+CREATE TABLE ItemSales(
+	itemName char(50) NOT NULL,
+	quantity integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(itemName));
+
+CREATE TABLE HourlySales(
+	hour timestamp NOT NULL,
+	orders integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(hour));
+
+CREATE TABLE CustomerSales(
+	login char(50) NOT NULL,
+	orders integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	unpaid numeric(12,2) NOT NULL,
+	PRIMARY KEY(login));
@@ -6,12 +6,12 @@ COPY USERS
 FROM '/home/cs172/cs166-project/data/users.csv'
 WITH DELIMITER ';';
 
-COPY ORDERS
+COPY ORDERS (orderid, login, paid, timeStampRecieved, total)
 FROM '/home/cs172/cs166-project/data/orders.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE orders_orderid_seq RESTART 87257;
 
-COPY ITEMSTATUS
+COPY ITEMSTATUS (orderid, itemName, lastUpdated, status, comments)
 FROM '/home/cs172/cs166-project/data/itemStatus.csv'
 WITH DELIMITER ';';
 